@@ -0,0 +1,61 @@
+// Copyright (c) Paris Morgan. All rights reserved.
+// Licensed under the MIT license.
+
+package com.example.notesar;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+class AnchorMissingReporter extends AsyncTask<String, Void, Void> {
+    private String baseAddress;
+    private MainActivity mainActivity;
+
+    public AnchorMissingReporter(String BaseAddress, MainActivity main) {
+        baseAddress = BaseAddress;
+        mainActivity = main;
+    }
+
+    /**
+     * Tells the sharing service that an anchor no longer exists in Azure Spatial Anchors.
+     * The service stops returning the identifier once enough different clients have reported it.
+     * @param anchorId The identifier that could not be found.
+     * @param clientId Identifies this install, so the service can count distinct reporters.
+     */
+    public void ReportAnchorMissing(String anchorId, String groupingKey, String clientId) {
+        HttpURLConnection connection = null;
+        try {
+            URL url = new URL(baseAddress + "/" + groupingKey + "/" + anchorId + "/missing");
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            DataOutputStream output = new DataOutputStream(connection.getOutputStream());
+            output.writeBytes(clientId);
+
+            int responseCode = connection.getResponseCode();
+            Log.i("NotesAR-SharingService", "[ReportAnchorMissing] Identifier " + anchorId + ". Returned with a status code of: " + responseCode);
+        }
+        catch(Exception e) {
+            Log.e("NotesAR-SharingService", e.getMessage());
+        }
+        finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Override
+    protected Void doInBackground(String... input) {
+        ReportAnchorMissing(input[0], input[1], input[2]);
+        return null;
+    }
+
+    @Override
+    protected void onPostExecute(Void v) {
+        mainActivity.AnchorReportedMissing();
+    }
+}
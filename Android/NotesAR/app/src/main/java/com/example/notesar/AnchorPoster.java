@@ -22,8 +22,9 @@ class AnchorPoster extends AsyncTask<String, Void, Void> {
     /**
      * Saves an identifier to the sharing service.
      * @param anchorId The identifier to save.
+     * @param expiresOn When the sharing service should stop returning the identifier, as an ISO 8601 date.
      */
-    public void PostAnchor(String anchorId, String groupingKey) {
+    public void PostAnchor(String anchorId, String groupingKey, String expiresOn) {
         String ret = "";
         HttpURLConnection connection = null;
         try {
@@ -32,7 +33,7 @@ class AnchorPoster extends AsyncTask<String, Void, Void> {
             connection.setRequestMethod("POST");
             connection.setDoOutput(true);
             DataOutputStream output = new DataOutputStream(connection.getOutputStream());
-            output.writeBytes(anchorId + "|" + groupingKey);
+            output.writeBytes(anchorId + "|" + groupingKey + "|" + expiresOn);
 
             int responseCode = connection.getResponseCode();
             Log.i("NotesAR-SharingService", "[PostAnchor] Identifier " + anchorId + ". Returned with a status code of: " + responseCode);
@@ -49,7 +50,7 @@ class AnchorPoster extends AsyncTask<String, Void, Void> {
 
     @Override
     protected Void doInBackground(String... input) {
-        PostAnchor(input[0], input[1]);
+        PostAnchor(input[0], input[1], input[2]);
         return null;
     }
 
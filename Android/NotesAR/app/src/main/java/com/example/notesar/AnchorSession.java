@@ -0,0 +1,58 @@
+// Copyright (c) Paris Morgan. All rights reserved.
+// Licensed under the MIT license.
+
+package com.example.notesar;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The parts of a CloudSpatialAnchorSession that drive MainActivity: session progress, located anchors and anchor creation.
+ * CloudAnchorSession wraps the real Azure Spatial Anchors session, SessionEventRecorder records one to a file,
+ * and SessionEventReplayer plays a recording back on a plain JVM.
+ * @param <A> The anchor type. CloudSpatialAnchor on device.
+ */
+interface AnchorSession<A> {
+
+    /**
+     * Mirrors com.microsoft.azure.spatialanchors.LocateAnchorStatus so this interface has no Android dependencies.
+     */
+    enum LocateStatus {
+        AlreadyTracked,
+        Located,
+        NotLocated,
+        NotLocatedAnchorDoesNotExist
+    }
+
+    interface SessionUpdatedListener {
+        /**
+         * @param recommendedForCreateProgress When > 1, we have enough information about the environment to save an anchor.
+         */
+        void onSessionUpdated(float recommendedForCreateProgress);
+    }
+
+    interface AnchorLocatedListener<A> {
+        /**
+         * @param identifier The CloudSpatialAnchor identifier.
+         * @param status Whether the anchor was located.
+         * @param anchor The located anchor. Null unless status is Located.
+         */
+        void onAnchorLocated(String identifier, LocateStatus status, A anchor);
+    }
+
+    void addSessionUpdatedListener(SessionUpdatedListener listener);
+
+    void addAnchorLocatedListener(AnchorLocatedListener<A> listener);
+
+    /**
+     * Creates a watcher that looks for the given anchors.
+     * @param identifiers The CloudSpatialAnchor identifiers to look for.
+     */
+    void createWatcher(String[] identifiers);
+
+    /**
+     * Saves an anchor to Azure Spatial Anchors.
+     * @param anchor The anchor to save.
+     * @return The identifier the service assigned to the anchor.
+     */
+    CompletableFuture<String> createAnchorAsync(A anchor);
+}
@@ -0,0 +1,63 @@
+// Copyright (c) Paris Morgan. All rights reserved.
+// Licensed under the MIT license.
+
+package com.example.notesar;
+
+import com.microsoft.azure.spatialanchors.AnchorLocateCriteria;
+import com.microsoft.azure.spatialanchors.CloudSpatialAnchor;
+import com.microsoft.azure.spatialanchors.CloudSpatialAnchorSession;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * An AnchorSession backed by a real Azure Spatial Anchors CloudSpatialAnchorSession.
+ */
+class CloudAnchorSession implements AnchorSession<CloudSpatialAnchor> {
+    private final CloudSpatialAnchorSession cloudSession;
+    private final Executor executor;
+
+    /**
+     * @param cloudSession The session to wrap.
+     * @param executor Used to wait for createAnchorAsync, which returns a plain Future.
+     *                 Don't pass an executor whose tasks wait on createAnchorAsync, or they can deadlock.
+     */
+    CloudAnchorSession(CloudSpatialAnchorSession cloudSession, Executor executor) {
+        this.cloudSession = cloudSession;
+        this.executor = executor;
+    }
+
+    @Override
+    public void addSessionUpdatedListener(SessionUpdatedListener listener) {
+        this.cloudSession.addSessionUpdatedListener(args -> listener.onSessionUpdated(args.getStatus().getRecommendedForCreateProgress()));
+    }
+
+    @Override
+    public void addAnchorLocatedListener(AnchorLocatedListener<CloudSpatialAnchor> listener) {
+        this.cloudSession.addAnchorLocatedListener(args -> listener.onAnchorLocated(
+                args.getIdentifier(),
+                LocateStatus.valueOf(args.getStatus().name()),
+                args.getAnchor()));
+    }
+
+    @Override
+    public void createWatcher(String[] identifiers) {
+        AnchorLocateCriteria criteria = new AnchorLocateCriteria();
+        criteria.setIdentifiers(identifiers);
+        this.cloudSession.createWatcher(criteria);
+    }
+
+    @Override
+    public CompletableFuture<String> createAnchorAsync(CloudSpatialAnchor anchor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                this.cloudSession.createAnchorAsync(anchor).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new CompletionException(e);
+            }
+            return anchor.getIdentifier();
+        }, this.executor);
+    }
+}
@@ -0,0 +1,191 @@
+// Copyright (c) Paris Morgan. All rights reserved.
+// Licensed under the MIT license.
+
+package com.example.notesar;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Moves located anchors from the ASA callback thread onto the UI thread without flooding it.
+ *
+ * Located events are accepted on the callback thread, prepared on a background thread, and then
+ * applied on the UI thread in small batches from the scene's per-frame update listener.
+ * Every accepted anchor is kept until it is applied. Only a bounded number are being prepared or
+ * waiting for the UI thread at once, the rest wait their turn. An identifier is only ever accepted
+ * once, so repeated Located and AlreadyTracked events for the same anchor are dropped.
+ * This class has no Android dependencies so it can be exercised on a plain JVM.
+ * @param <T> The prepared data handed to the UI thread.
+ */
+class LocatedAnchorPipeline<T> {
+    // Identifiers that have been accepted. Used to merge duplicate events for the same anchor.
+    private final Set<String> acceptedIdentifiers = ConcurrentHashMap.newKeySet();
+    // Identifiers we have already reported as AlreadyTracked, so we only report each one once.
+    private final Set<String> alreadyTrackedIdentifiers = ConcurrentHashMap.newKeySet();
+    // Accepted anchors waiting to be prepared. Bounded by the number of identifiers the watcher looks for.
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    // Prepared items waiting to be applied on the UI thread.
+    private final ConcurrentLinkedQueue<T> ready = new ConcurrentLinkedQueue<>();
+    // Number of items being prepared or waiting in ready. Never more than capacity.
+    private int staged = 0;
+    // Used as a lock to synchronize waiting, staged and isShutdown.
+    private final Object syncStages = new Object();
+    // True once shutdown() is called. Later submissions are dropped rather than handed to the stopped executor.
+    private boolean isShutdown = false;
+
+    private final ExecutorService prepareExecutor = Executors.newSingleThreadExecutor();
+    private final Consumer<T> apply;
+    private final BiConsumer<String, Exception> prepareFailed;
+    private final int capacity;
+    private final int maxPerFrame;
+    private final long frameBudgetNanos;
+
+    /**
+     * @param apply Called on the UI thread to apply a prepared item to the scene.
+     * @param prepareFailed Called on the background thread with the identifier when preparing an item throws. The anchor is not shown.
+     * @param capacity The maximum number of anchors being prepared or waiting for the UI thread at once.
+     * @param maxPerFrame The maximum number of items applied in a single frame.
+     * @param frameBudgetNanos The time we allow ourselves to spend applying items in a single frame.
+     */
+    LocatedAnchorPipeline(Consumer<T> apply, BiConsumer<String, Exception> prepareFailed, int capacity, int maxPerFrame, long frameBudgetNanos) {
+        this.apply = apply;
+        this.prepareFailed = prepareFailed;
+        this.capacity = capacity;
+        this.maxPerFrame = maxPerFrame;
+        this.frameBudgetNanos = frameBudgetNanos;
+    }
+
+    /**
+     * Called from the AnchorLocatedListener when an anchor is Located.
+     * @param identifier The CloudSpatialAnchor identifier.
+     * @param prepare Builds the item off the UI thread. Should not touch the scene graph.
+     * @return True if the event was accepted. False if the identifier was already accepted or the pipeline is shut down.
+     */
+    boolean submitLocated(String identifier, Callable<T> prepare) {
+        synchronized (this.syncStages) {
+            if (this.isShutdown || !this.acceptedIdentifiers.add(identifier)) {
+                return false;
+            }
+            this.waiting.add(() -> prepareItem(identifier, prepare));
+        }
+        stageWaiting();
+        return true;
+    }
+
+    /**
+     * Called from the AnchorLocatedListener when an anchor is AlreadyTracked.
+     * @param identifier The CloudSpatialAnchor identifier.
+     * @return True the first time an identifier is reported, false for every repeat.
+     */
+    boolean submitAlreadyTracked(String identifier) {
+        return this.alreadyTrackedIdentifiers.add(identifier);
+    }
+
+    /**
+     * Applies prepared items. Must be called on the UI thread, once per frame.
+     * Always applies at least one item if one is ready, so the pipeline makes progress even on slow frames.
+     * @return The number of items applied. Always 0 once the pipeline is shut down.
+     */
+    int drainFrame() {
+        synchronized (this.syncStages) {
+            if (this.isShutdown) {
+                return 0;
+            }
+        }
+
+        long start = System.nanoTime();
+        int applied = 0;
+        while (applied < this.maxPerFrame) {
+            if (applied > 0 && System.nanoTime() - start >= this.frameBudgetNanos) {
+                break;
+            }
+
+            T item = this.ready.poll();
+            if (item == null) {
+                break;
+            }
+
+            try {
+                this.apply.accept(item);
+            }
+            finally {
+                unstage();
+            }
+            applied++;
+        }
+        return applied;
+    }
+
+    /**
+     * @return The number of items accepted but not yet applied.
+     */
+    int pendingCount() {
+        synchronized (this.syncStages) {
+            return this.waiting.size() + this.staged;
+        }
+    }
+
+    /**
+     * @return The number of prepared items waiting for the UI thread.
+     */
+    int readyCount() {
+        return this.ready.size();
+    }
+
+    /**
+     * Stops the background thread. Anything submitted afterwards is dropped.
+     */
+    void shutdown() {
+        synchronized (this.syncStages) {
+            this.isShutdown = true;
+            this.waiting.clear();
+        }
+        this.prepareExecutor.shutdownNow();
+    }
+
+    private void prepareItem(String identifier, Callable<T> prepare) {
+        T item;
+        try {
+            item = prepare.call();
+            if (item == null) {
+                throw new IllegalStateException("prepare returned null");
+            }
+        }
+        catch (Exception e) {
+            unstage();
+            this.prepareFailed.accept(identifier, e);
+            return;
+        }
+        this.ready.add(item);
+    }
+
+    /**
+     * Moves waiting anchors to the background thread while there is room.
+     */
+    private void stageWaiting() {
+        synchronized (this.syncStages) {
+            if (this.isShutdown) {
+                return;
+            }
+            while (this.staged < this.capacity && !this.waiting.isEmpty()) {
+                this.staged++;
+                this.prepareExecutor.execute(this.waiting.poll());
+            }
+        }
+    }
+
+    private void unstage() {
+        synchronized (this.syncStages) {
+            this.staged--;
+        }
+        stageWaiting();
+    }
+}
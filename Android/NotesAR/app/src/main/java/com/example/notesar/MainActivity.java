@@ -5,6 +5,7 @@ package com.example.notesar;
 
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.SharedPreferences;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
@@ -33,14 +34,22 @@ import com.google.ar.sceneform.Scene;
 import com.google.ar.sceneform.rendering.ViewRenderable;
 import com.google.ar.sceneform.ux.ArFragment;
 
-import com.microsoft.azure.spatialanchors.AnchorLocateCriteria;
 import com.microsoft.azure.spatialanchors.CloudSpatialAnchor;
 import com.microsoft.azure.spatialanchors.CloudSpatialAnchorSession;
 import com.microsoft.azure.spatialanchors.SessionLogLevel;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -63,12 +72,56 @@ public class MainActivity extends AppCompatActivity {
     // In a production app, you will want to give the user an option to select this.
     private static final String SHARING_SERVICE_GROUPING_KEY = "helloworld";
 
+    // How long a note lasts. Azure Spatial Anchors deletes the CloudSpatialAnchor after this, and we
+    // send the same expiration to the sharing service so it stops returning the identifier at the same time.
+    private static final int CLOUD_ANCHOR_LIFETIME_DAYS = 7;
+
+    // The SharedPreferences file and key we store this install's sharing service client id in.
+    private static final String SHARED_PREFERENCES_NAME = "notesar";
+    private static final String SHARED_PREFERENCES_CLIENT_ID_KEY = "client_id";
+
+    // The maximum number of located anchors being prepared or waiting for the UI thread at once. The rest wait their turn.
+    private static final int LOCATED_PIPELINE_CAPACITY = 8;
+
+    // The maximum number of located anchors we add to the scene in a single frame.
+    private static final int LOCATED_PIPELINE_MAX_PER_FRAME = 2;
+
+    // The time we allow ourselves to spend adding located anchors to the scene in a single frame.
+    private static final long LOCATED_PIPELINE_FRAME_BUDGET_NANOS = 4_000_000L;
+
+    // Set this to true to record the session callbacks to SESSION_RECORDING_FILE_NAME in the app's external files directory.
+    // The recording can be played back on a plain JVM with SessionEventReplayer.
+    private static final boolean RECORD_SESSION_EVENTS = false;
+
+    private static final String SESSION_RECORDING_FILE_NAME = "session-events.tsv";
+
+    // How often the session recording is flushed to disk. If the app is killed, at most this much of the recording is lost.
+    private static final long SESSION_RECORDING_FLUSH_INTERVAL_MILLIS = 1000;
+
     private ArSceneView sceneView;
     private ArFragment arFragment;
     private CloudSpatialAnchorSession cloudSession;
+    // The session callbacks we use to locate and save anchors. Wraps cloudSession.
+    private AnchorSession<CloudSpatialAnchor> anchorSession;
+    // Records anchorSession if RECORD_SESSION_EVENTS is true, otherwise null.
+    private SessionEventRecorder<CloudSpatialAnchor> sessionRecorder;
 
     private ExecutorService executor = Executors.newSingleThreadExecutor();
 
+    // Waits for CloudSpatialAnchorSession.createAnchorAsync. Separate from executor, whose tasks wait on it.
+    private ExecutorService cloudSessionExecutor = Executors.newSingleThreadExecutor();
+
+    // Identifiers we have told the sharing service no longer exist, so we only report each one once.
+    private final Set<String> reportedMissingIdentifiers = ConcurrentHashMap.newKeySet();
+
+    // Moves located anchors from the ASA callback thread to the UI thread a few at a time.
+    private final LocatedAnchorPipeline<LocatedNote> locatedPipeline = new LocatedAnchorPipeline<>(
+            this::showLocatedNote,
+            (identifier, e) -> Log.e("NotesAR-ASAError", "[LocatedAnchorPipeline] Could not read the located anchor, it will not be shown. Identifier: " + identifier + ". " + e.toString()),
+            LOCATED_PIPELINE_CAPACITY,
+            LOCATED_PIPELINE_MAX_PER_FRAME,
+            LOCATED_PIPELINE_FRAME_BUDGET_NANOS);
+
     // When recommendedSessionProgress > 1, we have enough information about the environment to save an anchor.
     private float recommendedSessionProgress = 0f;
     // Used as a lock to synchronize recommendedSessionProgress.
@@ -116,6 +169,9 @@ public class MainActivity extends AppCompatActivity {
                 // Pass frames to Spatial Anchors for processing.
                 this.cloudSession.processFrame(this.sceneView.getArFrame());
             }
+
+            // Add any anchors located since the last frame.
+            this.locatedPipeline.drainFrame();
         });
 
         // Initialize the ASA session
@@ -126,6 +182,18 @@ public class MainActivity extends AppCompatActivity {
         anchorExchanger.execute(SHARING_SERVICE_GROUPING_KEY);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Stop the session first, so its watcher doesn't keep sending located anchors to the pipeline.
+        if (this.cloudSession != null) {
+            this.cloudSession.stop();
+            this.cloudSession = null;
+        }
+        this.locatedPipeline.shutdown();
+        closeSessionRecorder();
+    }
+
     /**
      * Initializes the Azure Spatial Anchors CloudSpatialAnchorSession.
      */
@@ -133,6 +201,7 @@ public class MainActivity extends AppCompatActivity {
         if (this.cloudSession != null){
             this.cloudSession.stop();
         }
+        closeSessionRecorder();
         this.cloudSession = new CloudSpatialAnchorSession();
         this.cloudSession.getConfiguration().setAccountId(SpatialAnchorsAccountId);
         this.cloudSession.getConfiguration().setAccountKey(SpatialAnchorsAccountKey);
@@ -141,6 +210,20 @@ public class MainActivity extends AppCompatActivity {
         // Set the ARCore Session on the CloudSpatialAnchorSession.
         this.cloudSession.setSession(sceneView.getSession());
 
+        this.anchorSession = new CloudAnchorSession(this.cloudSession, this.cloudSessionExecutor);
+        if (RECORD_SESSION_EVENTS) {
+            try {
+                File recording = new File(getExternalFilesDir(null), SESSION_RECORDING_FILE_NAME);
+                this.sessionRecorder = new SessionEventRecorder<>(this.anchorSession, new FileWriter(recording), SESSION_RECORDING_FLUSH_INTERVAL_MILLIS,
+                        e -> Log.e("NotesAR-ASAError", "[SessionEventRecorder] Could not write session events, the recording may be incomplete: " + e.toString()));
+                this.anchorSession = this.sessionRecorder;
+                Log.i("NotesAR-ASAInfo", "[initializeSession] Recording session events to " + recording.getAbsolutePath());
+            }
+            catch (IOException e) {
+                Log.e("NotesAR-ASAError", "[initializeSession] Could not start recording session events: " + e.toString());
+            }
+        }
+
         // Callback that prints log messages.
         this.cloudSession.addOnLogDebugListener(args -> Log.d("ASAInfo", args.getMessage()));
 
@@ -149,46 +232,51 @@ public class MainActivity extends AppCompatActivity {
 
         // Callback that gets called when the session has detected a change in the frames passed into it.
         // When recommendedSessionProgress is > 1, we can save a CloudSpatialAnchor.
-        this.cloudSession.addSessionUpdatedListener(args -> {
+        this.anchorSession.addSessionUpdatedListener(progress -> {
             synchronized (this.syncSessionProgress) {
-                this.recommendedSessionProgress = args.getStatus().getRecommendedForCreateProgress();
+                this.recommendedSessionProgress = progress;
                 Log.i("NotesAR-ASAInfo", String.format("[SessionUpdatedListener] Session progress: %f", this.recommendedSessionProgress));
             }
         });
 
         // Callback that is called when we locate an anchor. It will create a green sphere and a sticky note with the text a user previously inputted.
-        this.cloudSession.addAnchorLocatedListener(args -> {
-            String identifier = args.getIdentifier();
-            switch (args.getStatus())
+        this.anchorSession.addAnchorLocatedListener((identifier, status, cloudAnchor) -> {
+            switch (status)
             {
                 case Located:
-                    runOnUiThread(()->{
-                        SphereVisual visual = new SphereVisual();
-                        visual.identifier = identifier;
-                        // Get the Anchor from the CloudSpatialAnchor and set it on SphereVisual.
-                        visual.setLocalAnchor(args.getAnchor().getLocalAnchor());
-                        visual.cloudAnchor = args.getAnchor();
+                    // Read the note here, off the UI thread. The scene graph is updated later by showLocatedNote().
+                    boolean accepted = this.locatedPipeline.submitLocated(identifier, () -> {
+                        LocatedNote located = new LocatedNote();
+                        located.identifier = identifier;
+                        located.cloudAnchor = cloudAnchor;
 
                         // Get the note, which we stored as a property on the CloudSpatialAnchor.
-                        Map<String, String> properties = visual.cloudAnchor.getAppProperties();
+                        Map<String, String> properties = cloudAnchor.getAppProperties();
                         if (properties.containsKey(CLOUDSPATIALANCHOR_PROPERTIES_NOTE_KEY)) {
-                            visual.note = properties.get(CLOUDSPATIALANCHOR_PROPERTIES_NOTE_KEY);
+                            located.note = properties.get(CLOUDSPATIALANCHOR_PROPERTIES_NOTE_KEY);
                         }
-                        Log.i("NotesAR-ASAInfo","[AnchorLocatedListener] Anchor located! Identifier: " + identifier + ". Note: " + visual.note);
-
-                        visual.setColor(green);
-                        visual.render(arFragment);
-
-                        addStickyNote(visual);
+                        return located;
                     });
+                    if (!accepted) {
+                        Log.i("NotesAR-ASAInfo","[AnchorLocatedListener] Anchor already located. Identifier: " + identifier);
+                    }
                     break;
                 case NotLocated:
                     break;
                 case AlreadyTracked:
-                    Log.i("NotesAR-ASAInfo","[AnchorLocatedListener] Anchor already tracked. Identifier" + identifier);
+                    if (this.locatedPipeline.submitAlreadyTracked(identifier)) {
+                        Log.i("NotesAR-ASAInfo","[AnchorLocatedListener] Anchor already tracked. Identifier" + identifier);
+                    }
                     break;
                 case NotLocatedAnchorDoesNotExist:
                     Log.i("NotesAR-ASAInfo","[AnchorLocatedListener] Anchor does not exist. Identifier: " + identifier);
+                    // Tell the sharing service. Once enough clients agree, it stops returning this identifier and it no longer uses up a watcher slot.
+                    if (this.reportedMissingIdentifiers.add(identifier)) {
+                        runOnUiThread(() -> {
+                            AnchorMissingReporter reporter = new AnchorMissingReporter(SharingAnchorsServiceUrl, this);
+                            reporter.execute(identifier, SHARING_SERVICE_GROUPING_KEY, getClientId());
+                        });
+                    }
                     break;
             }
         });
@@ -197,6 +285,43 @@ public class MainActivity extends AppCompatActivity {
         this.cloudSession.start();
     }
 
+    /**
+     * Called by locatedPipeline on the UI thread to show an anchor that was located.
+     * Creates a green sphere and a sticky note with the text a user previously inputted.
+     * @param located The located anchor and its note.
+     */
+    private void showLocatedNote(LocatedNote located) {
+        SphereVisual visual = new SphereVisual();
+        visual.identifier = located.identifier;
+        // Get the Anchor from the CloudSpatialAnchor and set it on SphereVisual.
+        visual.setLocalAnchor(located.cloudAnchor.getLocalAnchor());
+        visual.cloudAnchor = located.cloudAnchor;
+        visual.note = located.note;
+        Log.i("NotesAR-ASAInfo","[AnchorLocatedListener] Anchor located! Identifier: " + visual.identifier + ". Note: " + visual.note);
+
+        visual.setColor(green);
+        visual.render(arFragment);
+
+        // We are already on the UI thread, so build the note here instead of posting another task.
+        addStickyNoteOnUiThread(visual);
+    }
+
+    /**
+     * Flushes and closes the session recording, if we are recording.
+     */
+    private void closeSessionRecorder() {
+        if (this.sessionRecorder == null) {
+            return;
+        }
+        try {
+            this.sessionRecorder.close();
+        }
+        catch (IOException e) {
+            Log.e("NotesAR-ASAError", "[closeSessionRecorder] " + e.toString());
+        }
+        this.sessionRecorder = null;
+    }
+
     /**
      * A helper method to set up the ARCore Session.
      * @param context
@@ -224,9 +349,7 @@ public class MainActivity extends AppCompatActivity {
         // Get anchor identifier from sharing service
         if (identifiers.length > 0) {
             Log.i("NotesAR-ASAInfo", "[LocateAnchors] Creating a watcher to look for anchors: " + Arrays.toString(identifiers));
-            AnchorLocateCriteria criteria = new AnchorLocateCriteria();
-            criteria.setIdentifiers(identifiers);
-            this.cloudSession.createWatcher(criteria);
+            this.anchorSession.createWatcher(identifiers);
         }
         else {
             Log.i("NotesAR-ASAInfo", "[LocateAnchors] Didn't retrieve any anchors from the service, so not creating a Watcher.");
@@ -240,6 +363,28 @@ public class MainActivity extends AppCompatActivity {
         Log.i("NotesAR-SharingService", "[AnchorPosted] Anchor posted to service");
     }
 
+    /**
+     * Called by AnchorMissingReporter when we reported a missing CloudSpatialAnchor identifier to the sharing service.
+     */
+    public void AnchorReportedMissing() {
+        Log.i("NotesAR-SharingService", "[AnchorReportedMissing] Missing anchor reported to service");
+    }
+
+    /**
+     * Gets the id that identifies this install to the sharing service, creating it the first time.
+     * The service only hides an anchor once several different installs report it missing.
+     * @return A random UUID that stays the same for this install.
+     */
+    private String getClientId() {
+        SharedPreferences preferences = getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
+        String clientId = preferences.getString(SHARED_PREFERENCES_CLIENT_ID_KEY, null);
+        if (clientId == null) {
+            clientId = UUID.randomUUID().toString();
+            preferences.edit().putString(SHARED_PREFERENCES_CLIENT_ID_KEY, clientId).apply();
+        }
+        return clientId;
+    }
+
     /**
      * Called whenever an ARCore Plane is tapped.
      * @param hitResult
@@ -265,6 +410,9 @@ public class MainActivity extends AppCompatActivity {
 
         // Set the Anchor as the localAnchor of the CloudSpatialAnchor.
         cloudAnchor.setLocalAnchor(localAnchor);
+
+        // Let the anchor expire, so old notes don't pile up in Azure Spatial Anchors or the sharing service.
+        cloudAnchor.setExpiration(Date.from(Instant.now().plus(CLOUD_ANCHOR_LIFETIME_DAYS, ChronoUnit.DAYS)));
         visual.cloudAnchor = cloudAnchor;
 
         // Render the white sphere.
@@ -346,6 +494,9 @@ public class MainActivity extends AppCompatActivity {
         // Add sticky note UI element to the anchor
         addStickyNote(anchorBeingCreated);
 
+        // The sharing service expects the expiration as an ISO 8601 date.
+        String expiresOn = anchorBeingCreated.cloudAnchor.getExpiration().toInstant().toString();
+
         // Save the CloudSpatialAnchor to Azure Spatial Anchors
         uploadCloudAnchorAsync(anchorBeingCreated.cloudAnchor)
                 .thenAccept(identifier -> {
@@ -369,7 +520,7 @@ public class MainActivity extends AppCompatActivity {
                     // Save anchor id to service
                     Log.d("NotesAR-ASAInfo", "[createAndUploadAnchor] Will save anchor to the service. Id: " + identifier);
                     AnchorPoster poster = new AnchorPoster(SharingAnchorsServiceUrl, this);
-                    poster.execute(identifier, SHARING_SERVICE_GROUPING_KEY);
+                    poster.execute(identifier, SHARING_SERVICE_GROUPING_KEY, expiresOn);
                 });
     }
 
@@ -401,7 +552,7 @@ public class MainActivity extends AppCompatActivity {
                 });
 
                 // Save the anchor to the cloud
-                this.cloudSession.createAnchorAsync(anchor).get();
+                this.anchorSession.createAnchorAsync(anchor).get();
             } catch (InterruptedException | ExecutionException e) {
                 Log.e("NotesAR-ASAError", "[uploadCloudAnchorAsync] " + e.toString());
                 throw new RuntimeException(e);
@@ -410,27 +561,42 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Adds a sticky note UI element.
+     * Adds a sticky note UI element from any thread.
      * @param anchor Places the note on the AnchorNode. The note comes from the note property on the anchor.
      */
     private void addStickyNote(SphereVisual anchor) {
+        runOnUiThread(() -> addStickyNoteOnUiThread(anchor));
+    }
+
+    /**
+     * Adds a sticky note UI element. Must be called on the UI thread.
+     * @param anchor Places the note on the AnchorNode. The note comes from the note property on the anchor.
+     */
+    private void addStickyNoteOnUiThread(SphereVisual anchor) {
         if (anchor.getAnchorNode() == null) {
             Log.e("NotesAR-UI", "[addStickyNote] Attempting to creating a sticky note with a null anchorNode");
             assert(anchor.getAnchorNode() != null);
             return;
         }
 
-        runOnUiThread(() -> {
-            ViewRenderable.builder().setView(this, R.layout.sticky_note).build()
-                .thenAccept(viewRenderable -> {
-                    Node noteText = new Node();
-                    noteText.setParent(arFragment.getArSceneView().getScene());
-                    noteText.setParent(anchor.getAnchorNode());
-                    noteText.setRenderable(viewRenderable);
-                    TextView tv = ((ViewRenderable) noteText.getRenderable()).getView().findViewById(R.id.postItNoteTextView);
-                    tv.setText(anchor.note);
-                    noteText.setLocalPosition(new Vector3(0.0f, 0.20f, 0f));
-                });
-        });
+        ViewRenderable.builder().setView(this, R.layout.sticky_note).build()
+            .thenAccept(viewRenderable -> {
+                Node noteText = new Node();
+                noteText.setParent(arFragment.getArSceneView().getScene());
+                noteText.setParent(anchor.getAnchorNode());
+                noteText.setRenderable(viewRenderable);
+                TextView tv = ((ViewRenderable) noteText.getRenderable()).getView().findViewById(R.id.postItNoteTextView);
+                tv.setText(anchor.note);
+                noteText.setLocalPosition(new Vector3(0.0f, 0.20f, 0f));
+            });
+    }
+
+    /**
+     * The data we need to show a located anchor, prepared off the UI thread.
+     */
+    private static class LocatedNote {
+        String identifier = "";
+        String note = "";
+        CloudSpatialAnchor cloudAnchor = null;
     }
 }
@@ -0,0 +1,51 @@
+// Copyright (c) Paris Morgan. All rights reserved.
+// Licensed under the MIT license.
+
+package com.example.notesar;
+
+/**
+ * One line of a session recording. Written by SessionEventRecorder and read by SessionEventReplayer.
+ * Each event is stored as tab separated fields: time in milliseconds since the recording started, the type, and the value.
+ */
+class SessionEvent {
+
+    enum Type {
+        // value is the recommendedForCreateProgress.
+        SessionUpdated,
+        // value is "<LocateStatus>|<identifier>".
+        AnchorLocated,
+        // value is the comma separated identifiers the watcher looks for.
+        WatcherCreated,
+        // value is empty. Marks when createAnchorAsync was called.
+        CreateAnchorStarted,
+        // value is the identifier, or empty if creating the anchor failed.
+        CreateAnchorCompleted
+    }
+
+    final long timeMillis;
+    final Type type;
+    final String value;
+
+    SessionEvent(long timeMillis, Type type, String value) {
+        this.timeMillis = timeMillis;
+        this.type = type;
+        this.value = value == null ? "" : value;
+    }
+
+    String toLine() {
+        return this.timeMillis + "\t" + this.type.name() + "\t" + this.value;
+    }
+
+    /**
+     * @param line A line written by toLine().
+     * @return The event.
+     * @throws IllegalArgumentException If the line is not a valid event.
+     */
+    static SessionEvent parse(String line) {
+        String[] fields = line.split("\t", 3);
+        if (fields.length < 2) {
+            throw new IllegalArgumentException("Not a session event: " + line);
+        }
+        return new SessionEvent(Long.parseLong(fields[0]), Type.valueOf(fields[1]), fields.length == 3 ? fields[2] : "");
+    }
+}
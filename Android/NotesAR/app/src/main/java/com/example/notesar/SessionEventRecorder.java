@@ -0,0 +1,146 @@
+// Copyright (c) Paris Morgan. All rights reserved.
+// Licensed under the MIT license.
+
+package com.example.notesar;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Wraps an AnchorSession and records the timeline of its callbacks so it can be played back with SessionEventReplayer.
+ * Create it before adding any listeners so every callback is recorded.
+ * Callbacks only take a timestamp and queue the event. Writing and flushing happen on a background thread,
+ * so disk latency does not show up in the recorded timeline.
+ * @param <A> The anchor type.
+ */
+class SessionEventRecorder<A> implements AnchorSession<A>, Closeable {
+    private final AnchorSession<A> session;
+    private final BufferedWriter writer;
+    private final long startNanos = System.nanoTime();
+    // Writes and flushes the recording. Only this thread touches writer.
+    private final ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+    // Used as a lock so events are queued in the order they were timestamped. Callbacks come in on several threads.
+    private final Object syncOrder = new Object();
+    private final Consumer<IOException> writeFailed;
+    // True once we have reported a write failure, so we only report the first one. Only used on writeExecutor.
+    private boolean reportedWriteFailure = false;
+
+    /**
+     * @param session The session to record.
+     * @param writer Where to write the recording. Closed by close().
+     * @param flushIntervalMillis How often to flush the recording. If the process is killed, at most this much is lost.
+     * @param writeFailed Called on a background thread with the first error writing the recording. Later errors are ignored.
+     */
+    SessionEventRecorder(AnchorSession<A> session, Writer writer, long flushIntervalMillis, Consumer<IOException> writeFailed) {
+        if (flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("flushIntervalMillis must be greater than 0");
+        }
+        this.session = session;
+        this.writer = new BufferedWriter(writer);
+        this.writeFailed = writeFailed;
+        this.writeExecutor.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void addSessionUpdatedListener(SessionUpdatedListener listener) {
+        this.session.addSessionUpdatedListener(progress -> {
+            record(SessionEvent.Type.SessionUpdated, Float.toString(progress));
+            listener.onSessionUpdated(progress);
+        });
+    }
+
+    @Override
+    public void addAnchorLocatedListener(AnchorLocatedListener<A> listener) {
+        this.session.addAnchorLocatedListener((identifier, status, anchor) -> {
+            record(SessionEvent.Type.AnchorLocated, status.name() + "|" + identifier);
+            listener.onAnchorLocated(identifier, status, anchor);
+        });
+    }
+
+    @Override
+    public void createWatcher(String[] identifiers) {
+        record(SessionEvent.Type.WatcherCreated, String.join(",", Arrays.asList(identifiers)));
+        this.session.createWatcher(identifiers);
+    }
+
+    @Override
+    public CompletableFuture<String> createAnchorAsync(A anchor) {
+        record(SessionEvent.Type.CreateAnchorStarted, "");
+        return this.session.createAnchorAsync(anchor).whenComplete((identifier, e) ->
+                record(SessionEvent.Type.CreateAnchorCompleted, e == null ? identifier : ""));
+    }
+
+    /**
+     * Writes every queued event, then closes the writer. Events recorded afterwards are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this.syncOrder) {
+            if (this.writeExecutor.isShutdown()) {
+                return;
+            }
+            this.writeExecutor.execute(() -> {
+                try {
+                    this.writer.close();
+                }
+                catch (IOException e) {
+                    reportWriteFailure(e);
+                }
+            });
+            this.writeExecutor.shutdown();
+        }
+        try {
+            this.writeExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void record(SessionEvent.Type type, String value) {
+        synchronized (this.syncOrder) {
+            // Take the timestamp before any I/O, and only queue the write here.
+            long timeMillis = (System.nanoTime() - this.startNanos) / 1_000_000L;
+            if (this.writeExecutor.isShutdown()) {
+                return;
+            }
+            SessionEvent event = new SessionEvent(timeMillis, type, value);
+            this.writeExecutor.execute(() -> write(event));
+        }
+    }
+
+    private void write(SessionEvent event) {
+        try {
+            this.writer.write(event.toLine());
+            this.writer.newLine();
+        }
+        catch (IOException e) {
+            reportWriteFailure(e);
+        }
+    }
+
+    private void flush() {
+        try {
+            this.writer.flush();
+        }
+        catch (IOException e) {
+            reportWriteFailure(e);
+        }
+    }
+
+    private void reportWriteFailure(IOException e) {
+        // Recording is best effort, we never want it to break the session.
+        if (!this.reportedWriteFailure) {
+            this.reportedWriteFailure = true;
+            this.writeFailed.accept(e);
+        }
+    }
+}
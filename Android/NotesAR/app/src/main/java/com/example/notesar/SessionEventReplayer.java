@@ -0,0 +1,223 @@
+// Copyright (c) Paris Morgan. All rights reserved.
+// Licensed under the MIT license.
+
+package com.example.notesar;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An AnchorSession that plays back a recording made by SessionEventRecorder. Runs on a plain JVM, without a device or the Azure service.
+ *
+ * Session updated events are delivered at their recorded times after start(), divided by the speed.
+ * Anchor located events are only delivered for identifiers passed to createWatcher. Each is delivered at its recorded
+ * offset from the recorded watcher that looked for it, divided by the speed, counted from the createWatcher call.
+ * Each call to createAnchorAsync completes with the next recorded anchor creation, after the recorded duration divided by the speed.
+ * Located anchors are represented by their identifier.
+ */
+class SessionEventReplayer implements AnchorSession<String> {
+
+    /**
+     * A recorded anchor located event, and when it happened relative to the watcher that found it.
+     */
+    private static class LocatedEvent {
+        final String identifier;
+        final LocateStatus status;
+        final long offsetMillis;
+        boolean scheduled = false;
+
+        LocatedEvent(String identifier, LocateStatus status, long offsetMillis) {
+            this.identifier = identifier;
+            this.status = status;
+            this.offsetMillis = offsetMillis;
+        }
+    }
+
+    private final List<SessionEvent> sessionUpdates = new ArrayList<>();
+    // Recorded located events, in order. Used as a lock to synchronize scheduling them.
+    private final List<LocatedEvent> locatedEvents = new ArrayList<>();
+    // Recorded createAnchorAsync calls, in order. Each entry is {durationMillis, identifier}.
+    private final Queue<String[]> anchorCreations = new ArrayDeque<>();
+    private final List<SessionUpdatedListener> sessionUpdatedListeners = new CopyOnWriteArrayList<>();
+    private final List<AnchorLocatedListener<String>> anchorLocatedListeners = new CopyOnWriteArrayList<>();
+    private final List<String> watchedIdentifiers = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final double speed;
+    private int skippedLocatedEvents = 0;
+
+    /**
+     * @param recording A recording written by SessionEventRecorder.
+     * @param speed 1 to replay in real time, higher to replay faster.
+     * @throws IOException If the recording could not be read.
+     */
+    SessionEventReplayer(Reader recording, double speed) throws IOException {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("speed must be greater than 0");
+        }
+        this.speed = speed;
+
+        // Recorded watchers, in order. Each entry is the time it was created and the identifiers it looked for.
+        List<Long> watcherTimes = new ArrayList<>();
+        List<Set<String>> watcherIdentifiers = new ArrayList<>();
+        long createStartedMillis = -1;
+        BufferedReader reader = new BufferedReader(recording);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            SessionEvent event = SessionEvent.parse(line);
+            switch (event.type) {
+                case SessionUpdated:
+                    this.sessionUpdates.add(event);
+                    break;
+                case AnchorLocated:
+                    String[] fields = event.value.split("\\|", 2);
+                    LocateStatus status = LocateStatus.valueOf(fields[0]);
+                    String identifier = fields.length == 2 ? fields[1] : "";
+
+                    // Find the latest watcher that was looking for this anchor.
+                    int watcher = watcherTimes.size() - 1;
+                    while (watcher >= 0 && !watcherIdentifiers.get(watcher).contains(identifier)) {
+                        watcher--;
+                    }
+                    if (watcher < 0) {
+                        // No recorded watcher looked for this anchor, so we can't tell when to deliver it.
+                        this.skippedLocatedEvents++;
+                        break;
+                    }
+                    this.locatedEvents.add(new LocatedEvent(identifier, status, event.timeMillis - watcherTimes.get(watcher)));
+                    break;
+                case WatcherCreated:
+                    watcherTimes.add(event.timeMillis);
+                    watcherIdentifiers.add(new HashSet<>(Arrays.asList(event.value.split(","))));
+                    break;
+                case CreateAnchorStarted:
+                    createStartedMillis = event.timeMillis;
+                    break;
+                case CreateAnchorCompleted:
+                    long duration = createStartedMillis < 0 ? 0 : event.timeMillis - createStartedMillis;
+                    this.anchorCreations.add(new String[] { Long.toString(duration), event.value });
+                    createStartedMillis = -1;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Starts delivering the recorded session updated events. Add listeners before calling this.
+     * @return A future that completes once every recorded session updated event has been delivered.
+     */
+    CompletableFuture<Void> start() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        for (SessionEvent event : this.sessionUpdates) {
+            this.scheduler.schedule(() -> deliverSessionUpdated(event), scaled(event.timeMillis), TimeUnit.MILLISECONDS);
+        }
+        long lastMillis = this.sessionUpdates.isEmpty() ? 0 : this.sessionUpdates.get(this.sessionUpdates.size() - 1).timeMillis;
+        this.scheduler.schedule(() -> { done.complete(null); }, scaled(lastMillis), TimeUnit.MILLISECONDS);
+        return done;
+    }
+
+    /**
+     * Stops delivering events.
+     */
+    void stop() {
+        this.scheduler.shutdownNow();
+    }
+
+    /**
+     * @return Every identifier passed to createWatcher, in order.
+     */
+    List<String> getWatchedIdentifiers() {
+        return new ArrayList<>(this.watchedIdentifiers);
+    }
+
+    /**
+     * @return The number of recorded located events that no recorded watcher was looking for. These are never delivered.
+     */
+    int getSkippedLocatedEventCount() {
+        return this.skippedLocatedEvents;
+    }
+
+    @Override
+    public void addSessionUpdatedListener(SessionUpdatedListener listener) {
+        this.sessionUpdatedListeners.add(listener);
+    }
+
+    @Override
+    public void addAnchorLocatedListener(AnchorLocatedListener<String> listener) {
+        this.anchorLocatedListeners.add(listener);
+    }
+
+    @Override
+    public void createWatcher(String[] identifiers) {
+        Set<String> watching = new HashSet<>(Arrays.asList(identifiers));
+        this.watchedIdentifiers.addAll(Arrays.asList(identifiers));
+
+        // Each recorded event is delivered at most once, by the first watcher that looks for its anchor.
+        synchronized (this.locatedEvents) {
+            for (LocatedEvent event : this.locatedEvents) {
+                if (!event.scheduled && watching.contains(event.identifier)) {
+                    event.scheduled = true;
+                    this.scheduler.schedule(() -> deliverAnchorLocated(event), scaled(event.offsetMillis), TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> createAnchorAsync(String anchor) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        String[] creation;
+        synchronized (this.anchorCreations) {
+            creation = this.anchorCreations.poll();
+        }
+        if (creation == null) {
+            result.completeExceptionally(new IllegalStateException("The recording has no more anchor creations to replay."));
+            return result;
+        }
+
+        String identifier = creation[1];
+        this.scheduler.schedule(() -> {
+            if (identifier.isEmpty()) {
+                result.completeExceptionally(new IllegalStateException("Creating the anchor failed in the recording."));
+            }
+            else {
+                result.complete(identifier);
+            }
+        }, scaled(Long.parseLong(creation[0])), TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    private void deliverSessionUpdated(SessionEvent event) {
+        float progress = Float.parseFloat(event.value);
+        for (SessionUpdatedListener listener : this.sessionUpdatedListeners) {
+            listener.onSessionUpdated(progress);
+        }
+    }
+
+    private void deliverAnchorLocated(LocatedEvent event) {
+        String anchor = event.status == LocateStatus.Located ? event.identifier : null;
+        for (AnchorLocatedListener<String> listener : this.anchorLocatedListeners) {
+            listener.onAnchorLocated(event.identifier, event.status, anchor);
+        }
+    }
+
+    private long scaled(long millis) {
+        return (long) (millis / this.speed);
+    }
+}
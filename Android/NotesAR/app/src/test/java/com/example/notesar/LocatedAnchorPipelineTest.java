@@ -0,0 +1,154 @@
+package com.example.notesar;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises the located anchor pipeline on the development machine (host).
+ */
+public class LocatedAnchorPipelineTest {
+    private static final long NO_BUDGET_LIMIT = TimeUnit.SECONDS.toNanos(10);
+
+    private final List<String> shown = new CopyOnWriteArrayList<>();
+    private final List<String> failed = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void submitLocated_mergesDuplicates() throws Exception {
+        LocatedAnchorPipeline<String> pipeline = newPipeline(8, 8, NO_BUDGET_LIMIT);
+
+        assertTrue(pipeline.submitLocated("anchor-1", () -> "anchor-1"));
+        assertFalse(pipeline.submitLocated("anchor-1", () -> "anchor-1"));
+        assertTrue(pipeline.submitAlreadyTracked("anchor-1"));
+        assertFalse(pipeline.submitAlreadyTracked("anchor-1"));
+
+        drainAll(pipeline);
+        assertEquals(1, shown.size());
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void submitLocated_pastCapacity_delaysButShowsEveryAnchor() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger started = new AtomicInteger(0);
+        LocatedAnchorPipeline<String> pipeline = newPipeline(2, 8, NO_BUDGET_LIMIT);
+
+        for (int i = 0; i < 20; i++) {
+            String identifier = "anchor-" + i;
+            assertTrue(pipeline.submitLocated(identifier, () -> {
+                started.incrementAndGet();
+                release.await();
+                return identifier;
+            }));
+        }
+        assertEquals(20, pipeline.pendingCount());
+
+        release.countDown();
+        waitFor(() -> pipeline.readyCount() == 2);
+        // Nothing more is prepared until the UI thread applies what is ready.
+        Thread.sleep(50);
+        assertEquals(2, started.get());
+
+        drainAll(pipeline);
+        assertEquals(20, shown.size());
+        assertEquals(20, started.get());
+        assertEquals(0, pipeline.pendingCount());
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void drainFrame_appliesAtMostMaxPerFrame() throws Exception {
+        LocatedAnchorPipeline<String> pipeline = newPipeline(8, 3, NO_BUDGET_LIMIT);
+        for (int i = 0; i < 5; i++) {
+            String identifier = "anchor-" + i;
+            pipeline.submitLocated(identifier, () -> identifier);
+        }
+        waitFor(() -> pipeline.readyCount() == 5);
+
+        assertEquals(3, pipeline.drainFrame());
+        assertEquals(2, pipeline.drainFrame());
+        assertEquals(0, pipeline.drainFrame());
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void drainFrame_stopsWhenBudgetIsSpent() throws Exception {
+        List<String> slowShown = new CopyOnWriteArrayList<>();
+        LocatedAnchorPipeline<String> pipeline = new LocatedAnchorPipeline<>(identifier -> {
+            slowShown.add(identifier);
+            sleep(5);
+        }, (identifier, e) -> failed.add(identifier), 8, 8, TimeUnit.MILLISECONDS.toNanos(1));
+        for (int i = 0; i < 3; i++) {
+            String identifier = "anchor-" + i;
+            pipeline.submitLocated(identifier, () -> identifier);
+        }
+        waitFor(() -> pipeline.readyCount() == 3);
+
+        // The first item always goes through, even though it uses the whole budget.
+        assertEquals(1, pipeline.drainFrame());
+        assertEquals(1, slowShown.size());
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void submitLocated_prepareThrows_reportsFailureAndKeepsGoing() throws Exception {
+        LocatedAnchorPipeline<String> pipeline = newPipeline(1, 8, NO_BUDGET_LIMIT);
+
+        pipeline.submitLocated("broken", () -> { throw new IllegalStateException("no properties"); });
+        pipeline.submitLocated("anchor-1", () -> "anchor-1");
+
+        drainAll(pipeline);
+        assertEquals(1, failed.size());
+        assertEquals("broken", failed.get(0));
+        assertEquals(1, shown.size());
+        assertEquals("anchor-1", shown.get(0));
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void submitLocated_afterShutdown_isDroppedWithoutThrowing() throws Exception {
+        LocatedAnchorPipeline<String> pipeline = newPipeline(8, 8, NO_BUDGET_LIMIT);
+        pipeline.shutdown();
+
+        assertFalse(pipeline.submitLocated("anchor-1", () -> "anchor-1"));
+        assertEquals(0, pipeline.drainFrame());
+        assertEquals(0, shown.size());
+    }
+
+    private LocatedAnchorPipeline<String> newPipeline(int capacity, int maxPerFrame, long frameBudgetNanos) {
+        return new LocatedAnchorPipeline<>(shown::add, (identifier, e) -> failed.add(identifier), capacity, maxPerFrame, frameBudgetNanos);
+    }
+
+    private static void drainAll(LocatedAnchorPipeline<String> pipeline) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.pendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            pipeline.drainFrame();
+            Thread.sleep(1);
+        }
+        assertEquals(0, pipeline.pendingCount());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.notesar;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays recorded session timelines on the development machine (host), without a device or the Azure service.
+ */
+public class SessionEventReplayerTest {
+    private static final String RECORDING =
+            "0\tSessionUpdated\t0.5\n" +
+            "100\tSessionUpdated\t1.2\n" +
+            "150\tWatcherCreated\tanchor-1,anchor-3\n" +
+            "200\tAnchorLocated\tLocated|anchor-1\n" +
+            "210\tAnchorLocated\tLocated|anchor-1\n" +
+            "220\tAnchorLocated\tAlreadyTracked|anchor-1\n" +
+            "230\tAnchorLocated\tNotLocatedAnchorDoesNotExist|anchor-3\n" +
+            "240\tAnchorLocated\tLocated|anchor-4\n" +
+            "300\tCreateAnchorStarted\t\n" +
+            "800\tCreateAnchorCompleted\tanchor-2\n";
+
+    @Test
+    public void replay_deliversEventsAndAnchorCreations() throws Exception {
+        SessionEventReplayer replayer = new SessionEventReplayer(new StringReader(RECORDING), 100);
+        List<Float> progress = new CopyOnWriteArrayList<>();
+        List<String> located = new CopyOnWriteArrayList<>();
+        replayer.addSessionUpdatedListener(progress::add);
+        replayer.addAnchorLocatedListener((identifier, status, anchor) -> located.add(status + ":" + identifier));
+
+        replayer.start().get(5, TimeUnit.SECONDS);
+        replayer.createWatcher(new String[] { "anchor-1", "anchor-3" });
+        waitFor(() -> located.size() == 4);
+
+        assertEquals(2, progress.size());
+        assertEquals(1.2f, progress.get(1), 0.0001f);
+        assertEquals("Located:anchor-1", located.get(0));
+        assertEquals("NotLocatedAnchorDoesNotExist:anchor-3", located.get(3));
+        // anchor-4 was never looked for by a recorded watcher.
+        assertEquals(1, replayer.getSkippedLocatedEventCount());
+        assertEquals("anchor-2", replayer.createAnchorAsync("new").get(5, TimeUnit.SECONDS));
+        replayer.stop();
+    }
+
+    @Test
+    public void replay_onlyDeliversWatchedIdentifiers() throws Exception {
+        SessionEventReplayer replayer = new SessionEventReplayer(new StringReader(RECORDING), 100);
+        List<String> located = new CopyOnWriteArrayList<>();
+        replayer.addAnchorLocatedListener((identifier, status, anchor) -> located.add(identifier));
+
+        replayer.start().get(5, TimeUnit.SECONDS);
+        Thread.sleep(50);
+        // Without a watcher, nothing is located.
+        assertEquals(0, located.size());
+
+        replayer.createWatcher(new String[] { "anchor-3", "anchor-5" });
+        waitFor(() -> located.size() == 1);
+        Thread.sleep(50);
+        assertEquals(1, located.size());
+        assertEquals("anchor-3", located.get(0));
+        replayer.stop();
+    }
+
+    @Test
+    public void replay_throughPipeline_mergesDuplicateLocatedEvents() throws Exception {
+        SessionEventReplayer replayer = new SessionEventReplayer(new StringReader(RECORDING), 100);
+        List<String> shown = new CopyOnWriteArrayList<>();
+        List<String> located = new CopyOnWriteArrayList<>();
+        LocatedAnchorPipeline<String> pipeline = new LocatedAnchorPipeline<>(shown::add, (identifier, e) -> fail(identifier), 8, 2, TimeUnit.MILLISECONDS.toNanos(4));
+        replayer.addAnchorLocatedListener((identifier, status, anchor) -> {
+            located.add(identifier);
+            if (status == AnchorSession.LocateStatus.Located) {
+                pipeline.submitLocated(identifier, () -> anchor);
+            }
+        });
+
+        replayer.createWatcher(new String[] { "anchor-1", "anchor-3" });
+        waitFor(() -> located.size() == 4);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.pendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            pipeline.drainFrame();
+            Thread.sleep(1);
+        }
+
+        assertEquals(1, shown.size());
+        assertEquals("anchor-1", shown.get(0));
+        pipeline.shutdown();
+        replayer.stop();
+    }
+
+    @Test
+    public void recorder_writesLinesTheReplayerCanRead() throws Exception {
+        SessionEventReplayer source = new SessionEventReplayer(new StringReader(RECORDING), 100);
+        StringWriter recording = new StringWriter();
+        List<IOException> errors = new CopyOnWriteArrayList<>();
+        SessionEventRecorder<String> recorder = new SessionEventRecorder<>(source, recording, 10, errors::add);
+        List<String> located = new CopyOnWriteArrayList<>();
+        recorder.addAnchorLocatedListener((identifier, status, anchor) -> located.add(identifier));
+
+        source.start().get(5, TimeUnit.SECONDS);
+        recorder.createWatcher(new String[] { "anchor-1" });
+        waitFor(() -> located.size() == 3);
+        recorder.createAnchorAsync("new").get(5, TimeUnit.SECONDS);
+        // Events are flushed periodically, without waiting for close().
+        waitFor(() -> recording.toString().contains("\tCreateAnchorCompleted\tanchor-2"));
+        recorder.close();
+        source.stop();
+        assertEquals(0, errors.size());
+
+        SessionEventReplayer replayed = new SessionEventReplayer(new StringReader(recording.toString()), 100);
+        List<String> replayedLocated = new CopyOnWriteArrayList<>();
+        replayed.addAnchorLocatedListener((identifier, status, anchor) -> replayedLocated.add(identifier));
+        replayed.createWatcher(new String[] { "anchor-1" });
+        waitFor(() -> replayedLocated.size() == 3);
+        assertEquals("anchor-2", replayed.createAnchorAsync("new").get(5, TimeUnit.SECONDS));
+        replayed.stop();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
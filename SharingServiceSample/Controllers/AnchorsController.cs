@@ -2,6 +2,7 @@
 // Licensed under the MIT license.
 using Microsoft.AspNetCore.Mvc;
 using SharingService.Data;
+using System;
 using System.Collections.Generic;
 using System.IO;
 using System.Text;
@@ -54,16 +55,56 @@ namespace SharingService.Controllers
                 return this.BadRequest();
             }
 
+            // The body is "anchorId|groupingKey", optionally followed by "|expiresOn" as an ISO 8601 date.
             string[] splitMessageBody = messageBody.Split("|");
-            if (splitMessageBody.Length != 2)
+            if (splitMessageBody.Length != 2 && splitMessageBody.Length != 3)
             {
                 return this.BadRequest();
             }
             string anchorId = splitMessageBody[0];
             string groupingKey = splitMessageBody[1];
 
+            DateTimeOffset? expiresOn = null;
+            if (splitMessageBody.Length == 3)
+            {
+                if (!DateTimeOffset.TryParse(splitMessageBody[2], out DateTimeOffset parsedExpiresOn))
+                {
+                    return this.BadRequest();
+                }
+                expiresOn = parsedExpiresOn;
+            }
+
             // Set the key
-            await this.anchorIdCache.SetAnchorIdAsync(groupingKey, anchorId);
+            await this.anchorIdCache.SetAnchorIdAsync(groupingKey, anchorId, expiresOn);
+
+            return new EmptyResult();
+        }
+
+        // POST api/anchors/build/anchorId/missing
+        // Called by clients when Azure Spatial Anchors reports that the anchor no longer exists. The body is the client id, a GUID.
+        // The anchor id is hidden once AnchorMissingReportThreshold distinct client ids report it. Client ids are not verified.
+        [HttpPost("{groupingKey}/{anchorId}/missing")]
+        public async Task<ActionResult> PostMissingAsync(string groupingKey, string anchorId)
+        {
+            string clientId;
+            using (StreamReader reader = new StreamReader(this.Request.Body, Encoding.UTF8))
+            {
+                clientId = (await reader.ReadToEndAsync()).Trim();
+            }
+
+            if (!Guid.TryParse(clientId, out Guid parsedClientId))
+            {
+                return this.BadRequest();
+            }
+
+            try
+            {
+                await this.anchorIdCache.ReportAnchorMissingAsync(groupingKey, anchorId, parsedClientId.ToString());
+            }
+            catch (KeyNotFoundException)
+            {
+                return this.NotFound();
+            }
 
             return new EmptyResult();
         }
@@ -0,0 +1,65 @@
+// Copyright (c) Microsoft Corporation. All rights reserved.
+// Licensed under the MIT license.
+using Microsoft.Extensions.Hosting;
+using Microsoft.Extensions.Logging;
+using System;
+using System.Threading;
+using System.Threading.Tasks;
+
+namespace SharingService.Data
+{
+    /// <summary>
+    /// Periodically removes expired and long hidden anchor ids from the anchor id cache.
+    /// </summary>
+    internal class AnchorCompactionService : BackgroundService
+    {
+        private readonly IAnchorIdCache anchorIdCache;
+        private readonly ILogger<AnchorCompactionService> logger;
+        private readonly TimeSpan interval;
+        private readonly TimeSpan hiddenRetention;
+
+        /// <summary>
+        /// Initializes a new instance of the <see cref="AnchorCompactionService"/> class.
+        /// </summary>
+        /// <param name="anchorIdCache">The anchor key cache.</param>
+        /// <param name="logger">The logger.</param>
+        /// <param name="interval">How often to compact the cache. Must be greater than zero.</param>
+        /// <param name="hiddenRetention">How long to keep anchor ids hidden by missing reports before removing them.</param>
+        public AnchorCompactionService(IAnchorIdCache anchorIdCache, ILogger<AnchorCompactionService> logger, TimeSpan interval, TimeSpan hiddenRetention)
+        {
+            // A zero interval would query table storage in a tight loop.
+            if (interval <= TimeSpan.Zero)
+            {
+                throw new ArgumentOutOfRangeException(nameof(interval), "The compaction interval must be greater than zero.");
+            }
+            if (hiddenRetention < TimeSpan.Zero)
+            {
+                throw new ArgumentOutOfRangeException(nameof(hiddenRetention), "The hidden retention can't be negative.");
+            }
+
+            this.anchorIdCache = anchorIdCache;
+            this.logger = logger;
+            this.interval = interval;
+            this.hiddenRetention = hiddenRetention;
+        }
+
+        protected override async Task ExecuteAsync(CancellationToken stoppingToken)
+        {
+            while (!stoppingToken.IsCancellationRequested)
+            {
+                try
+                {
+                    int removed = await this.anchorIdCache.CompactAsync(DateTimeOffset.UtcNow, this.hiddenRetention);
+                    this.logger.LogInformation("Compaction removed {Removed} anchor ids.", removed);
+                }
+                catch (Exception e)
+                {
+                    // Try again next interval rather than stopping the sweep.
+                    this.logger.LogError(e, "Compaction failed.");
+                }
+
+                await Task.Delay(this.interval, stoppingToken);
+            }
+        }
+    }
+}
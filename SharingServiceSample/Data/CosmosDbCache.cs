@@ -2,8 +2,10 @@
 // Licensed under the MIT license.
 using Microsoft.WindowsAzure.Storage;
 using Microsoft.WindowsAzure.Storage.Table;
+using System;
 using System.Collections.Generic;
 using System.Linq;
+using System.Net;
 using System.Threading;
 using System.Threading.Tasks;
 
@@ -13,17 +15,41 @@ namespace SharingService.Data
     {
         public AnchorCacheEntity() { }
 
-        public AnchorCacheEntity(string groupingKey, string anchorId, string partitionKey)
+        public AnchorCacheEntity(string groupingKey, string anchorId, string partitionKey, DateTimeOffset? expiresOn)
         {
             this.PartitionKey = partitionKey;
             this.RowKey = anchorId;
             this.AnchorId = anchorId;
             this.GroupingKey = groupingKey;
+            this.ExpiresOn = expiresOn;
         }
 
         public string AnchorId { get; set; }
 
         public string GroupingKey { get; set; }
+
+        /// <summary>
+        /// When the anchor id should stop being returned, or null if it never expires.
+        /// </summary>
+        public DateTimeOffset? ExpiresOn { get; set; }
+
+        /// <summary>
+        /// True once enough distinct clients have reported that the anchor no longer exists in Azure Spatial Anchors.
+        /// The row is kept until the hidden retention window passes, so a bad report can be undone in the meantime.
+        /// </summary>
+        public bool IsDeleted { get; set; }
+
+        public DateTimeOffset? DeletedOn { get; set; }
+
+        /// <summary>
+        /// Comma separated ids of the clients that reported the anchor missing.
+        /// </summary>
+        public string MissingReporters { get; set; }
+
+        public bool IsLive(DateTimeOffset now)
+        {
+            return !this.IsDeleted && (this.ExpiresOn == null || this.ExpiresOn > now);
+        }
     }
 
 
@@ -35,11 +61,32 @@ namespace SharingService.Data
         /// </summary>
         private const string partitionKey = "UseARealParititionForProductionCode";
 
+        /// <summary>
+        /// Table storage batches are limited to 100 operations.
+        /// </summary>
+        private const int maxBatchSize = 100;
+
+        /// <summary>
+        /// How many times we retry recording a missing report when another client updates the same row at once.
+        /// </summary>
+        private const int maxReportAttempts = 5;
+
         /// <summary>
         /// The database cache.
         /// </summary>
         private readonly CloudTable dbCache;
 
+        /// <summary>
+        /// The lifetime given to anchor ids saved without an expiry, or null if they never expire.
+        /// </summary>
+        private readonly TimeSpan? defaultLifetime;
+
+        /// <summary>
+        /// The number of distinct client ids that must report an anchor missing before it is hidden.
+        /// Raising this above 1 guards against a single misconfigured client. Client ids are not verified, so it is not an access control.
+        /// </summary>
+        private readonly int missingReportThreshold;
+
         // To ensure our asynchronous initialization code is only ever invoked once, we employ two manualResetEvents
         ManualResetEventSlim initialized = new ManualResetEventSlim();
         ManualResetEventSlim initializing = new ManualResetEventSlim();
@@ -59,8 +106,15 @@ namespace SharingService.Data
             }
         }
 
-        public CosmosDbCache(string storageConnectionString)
+        public CosmosDbCache(string storageConnectionString, TimeSpan? defaultLifetime = null, int missingReportThreshold = 1)
         {
+            if (missingReportThreshold < 1)
+            {
+                throw new ArgumentOutOfRangeException(nameof(missingReportThreshold), "At least one report is needed to hide an anchor id.");
+            }
+
+            this.defaultLifetime = defaultLifetime;
+            this.missingReportThreshold = missingReportThreshold;
             CloudStorageAccount storageAccount = CloudStorageAccount.Parse(storageConnectionString);
             CloudTableClient tableClient = storageAccount.CreateCloudTableClient();
             this.dbCache = tableClient.GetTableReference("AnchorCache");
@@ -76,16 +130,13 @@ namespace SharingService.Data
         {
             await InitializeAsync();
 
-            List<AnchorCacheEntity> results = new List<AnchorCacheEntity>();
             TableQuery<AnchorCacheEntity> tableQuery = new TableQuery<AnchorCacheEntity>()
                 .Where( TableQuery.GenerateFilterCondition("GroupingKey", QueryComparisons.Equal, groupingKey));
-            TableQuerySegment<AnchorCacheEntity> previousSegment = null;
-            while (previousSegment == null || previousSegment.ContinuationToken != null)
-            {
-                TableQuerySegment<AnchorCacheEntity> currentSegment = await this.dbCache.ExecuteQuerySegmentedAsync<AnchorCacheEntity>(tableQuery, previousSegment?.ContinuationToken);
-                previousSegment = currentSegment;
-                results.AddRange(previousSegment.Results);
-            }
+
+            // Hidden and expired ids are filtered here rather than in the query, because rows saved
+            // before those properties existed would not match a filter on them.
+            DateTimeOffset now = DateTimeOffset.UtcNow;
+            List<AnchorCacheEntity> results = (await this.QueryAllAsync(tableQuery)).Where(entity => entity.IsLive(now)).ToList();
 
             if (results.Count == 0)
             {
@@ -105,16 +156,132 @@ namespace SharingService.Data
         /// </summary>
         /// <param name="groupingKey">The grouping key between several anchors.</param>
         /// <param name="anchorId">The anchor id.</param>
+        /// <param name="expiresOn">When the anchor id should stop being returned. If null, the default lifetime is used.</param>
         /// <returns>A Task</returns>
-        public async Task SetAnchorIdAsync(string groupingKey, string anchorId)
+        public async Task SetAnchorIdAsync(string groupingKey, string anchorId, DateTimeOffset? expiresOn = null)
         {
             await InitializeAsync();
 
-            AnchorCacheEntity anchorEntity = new AnchorCacheEntity(groupingKey, anchorId, CosmosDbCache.partitionKey);
+            if (expiresOn == null && this.defaultLifetime != null)
+            {
+                expiresOn = DateTimeOffset.UtcNow + this.defaultLifetime.Value;
+            }
+
+            AnchorCacheEntity anchorEntity = new AnchorCacheEntity(groupingKey, anchorId, CosmosDbCache.partitionKey, expiresOn);
 
             await this.dbCache.ExecuteAsync(TableOperation.Insert(anchorEntity));
 
             return;
         }
+
+        /// <summary>
+        /// Records that a client could not find an anchor asynchronously.
+        /// </summary>
+        /// <param name="groupingKey">The grouping key the anchor id was saved with.</param>
+        /// <param name="anchorId">The anchor id.</param>
+        /// <param name="clientId">The id of the reporting client.</param>
+        /// <exception cref="KeyNotFoundException"></exception>
+        /// <returns>True if the anchor id is now hidden; otherwise, false.</returns>
+        public async Task<bool> ReportAnchorMissingAsync(string groupingKey, string anchorId, string clientId)
+        {
+            await InitializeAsync();
+
+            for (int attempt = 0; attempt < CosmosDbCache.maxReportAttempts; attempt++)
+            {
+                TableResult result = await this.dbCache.ExecuteAsync(TableOperation.Retrieve<AnchorCacheEntity>(CosmosDbCache.partitionKey, anchorId));
+                AnchorCacheEntity anchorEntity = result.Result as AnchorCacheEntity;
+                if (anchorEntity == null || anchorEntity.GroupingKey != groupingKey)
+                {
+                    throw new KeyNotFoundException($"No anchor with {nameof(anchorId)} {anchorId} and {nameof(groupingKey)} {groupingKey} could be found.");
+                }
+
+                if (anchorEntity.IsDeleted)
+                {
+                    return true;
+                }
+
+                HashSet<string> reporters = new HashSet<string>((anchorEntity.MissingReporters ?? string.Empty).Split(',', StringSplitOptions.RemoveEmptyEntries));
+                if (!reporters.Add(clientId))
+                {
+                    // Repeated reports from the same client don't count.
+                    return false;
+                }
+
+                anchorEntity.MissingReporters = string.Join(",", reporters);
+                if (reporters.Count >= this.missingReportThreshold)
+                {
+                    anchorEntity.IsDeleted = true;
+                    anchorEntity.DeletedOn = DateTimeOffset.UtcNow;
+                }
+
+                try
+                {
+                    // The ETag from the retrieve makes this fail if another client reported at the same time, so no report is lost.
+                    await this.dbCache.ExecuteAsync(TableOperation.Merge(anchorEntity));
+                    return anchorEntity.IsDeleted;
+                }
+                catch (StorageException e) when (e.RequestInformation.HttpStatusCode == (int)HttpStatusCode.PreconditionFailed)
+                {
+                    // Try again with the latest row.
+                }
+            }
+
+            return false;
+        }
+
+        /// <summary>
+        /// Removes expired anchor ids, and anchor ids hidden by missing reports for longer than <paramref name="hiddenRetention"/>, asynchronously.
+        /// </summary>
+        /// <param name="now">The current time.</param>
+        /// <param name="hiddenRetention">How long to keep hidden anchor ids before removing them.</param>
+        /// <returns>The number of anchor ids removed.</returns>
+        public async Task<int> CompactAsync(DateTimeOffset now, TimeSpan hiddenRetention)
+        {
+            await InitializeAsync();
+
+            // Rows without ExpiresOn or IsDeleted never match a filter on them, which is what we want: they never need compacting.
+            string staleFilter = TableQuery.CombineFilters(
+                TableQuery.GenerateFilterConditionForDate("ExpiresOn", QueryComparisons.LessThanOrEqual, now),
+                TableOperators.Or,
+                TableQuery.CombineFilters(
+                    TableQuery.GenerateFilterConditionForBool("IsDeleted", QueryComparisons.Equal, true),
+                    TableOperators.And,
+                    TableQuery.GenerateFilterConditionForDate("DeletedOn", QueryComparisons.LessThanOrEqual, now - hiddenRetention)));
+            TableQuery<AnchorCacheEntity> tableQuery = new TableQuery<AnchorCacheEntity>()
+                .Where(TableQuery.CombineFilters(
+                    TableQuery.GenerateFilterCondition("PartitionKey", QueryComparisons.Equal, CosmosDbCache.partitionKey),
+                    TableOperators.And,
+                    staleFilter))
+                .Select(new[] { "AnchorId" });
+
+            List<AnchorCacheEntity> stale = await this.QueryAllAsync(tableQuery);
+
+            // Everything is on one partition, so we can remove the entities in batches.
+            for (int i = 0; i < stale.Count; i += CosmosDbCache.maxBatchSize)
+            {
+                TableBatchOperation batch = new TableBatchOperation();
+                foreach (AnchorCacheEntity entity in stale.Skip(i).Take(CosmosDbCache.maxBatchSize))
+                {
+                    entity.ETag = "*";
+                    batch.Delete(entity);
+                }
+                await this.dbCache.ExecuteBatchAsync(batch);
+            }
+
+            return stale.Count;
+        }
+
+        private async Task<List<AnchorCacheEntity>> QueryAllAsync(TableQuery<AnchorCacheEntity> tableQuery)
+        {
+            List<AnchorCacheEntity> results = new List<AnchorCacheEntity>();
+            TableQuerySegment<AnchorCacheEntity> previousSegment = null;
+            while (previousSegment == null || previousSegment.ContinuationToken != null)
+            {
+                TableQuerySegment<AnchorCacheEntity> currentSegment = await this.dbCache.ExecuteQuerySegmentedAsync<AnchorCacheEntity>(tableQuery, previousSegment?.ContinuationToken);
+                previousSegment = currentSegment;
+                results.AddRange(previousSegment.Results);
+            }
+            return results;
+        }
     }
 }
@@ -1,5 +1,6 @@
 // Copyright (c) Microsoft Corporation. All rights reserved.
 // Licensed under the MIT license.
+using System;
 using System.Threading.Tasks;
 
 namespace SharingService.Data
@@ -21,7 +22,27 @@ namespace SharingService.Data
         /// </summary>
         /// <param name="groupingKey">The grouping key between several anchors.</param>
         /// <param name="anchorId">The anchor id.</param>
+        /// <param name="expiresOn">When the anchor id should stop being returned. If null, the cache's default lifetime is used.</param>
         /// <returns>A Task</returns>
-        Task SetAnchorIdAsync(string groupingKey, string anchorId);
+        Task SetAnchorIdAsync(string groupingKey, string anchorId, DateTimeOffset? expiresOn = null);
+
+        /// <summary>
+        /// Records that a client could not find an anchor asynchronously.
+        /// Once enough distinct clients report the same anchor, it is no longer returned by <see cref="GetAnchorIdsAsync"/>.
+        /// Hidden anchor ids are kept until <see cref="CompactAsync"/> removes them after the retention window.
+        /// </summary>
+        /// <param name="groupingKey">The grouping key the anchor id was saved with.</param>
+        /// <param name="anchorId">The anchor id.</param>
+        /// <param name="clientId">The id of the reporting client.</param>
+        /// <returns>True if the anchor id is now hidden; otherwise, false.</returns>
+        Task<bool> ReportAnchorMissingAsync(string groupingKey, string anchorId, string clientId);
+
+        /// <summary>
+        /// Removes expired anchor ids, and hidden anchor ids older than the retention window, asynchronously.
+        /// </summary>
+        /// <param name="now">The current time.</param>
+        /// <param name="hiddenRetention">How long to keep hidden anchor ids before removing them.</param>
+        /// <returns>The number of anchor ids removed.</returns>
+        Task<int> CompactAsync(DateTimeOffset now, TimeSpan hiddenRetention);
     }
 }
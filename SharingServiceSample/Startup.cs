@@ -6,8 +6,11 @@ using Microsoft.AspNetCore.Hosting;
 using Microsoft.AspNetCore.Mvc;
 using Microsoft.Extensions.Configuration;
 using Microsoft.Extensions.DependencyInjection;
+using Microsoft.Extensions.Hosting;
+using Microsoft.Extensions.Logging;
 using SharingService.Data;
 using Swashbuckle.AspNetCore.Swagger;
+using System;
 
 namespace SharingService
 {
@@ -25,8 +28,22 @@ namespace SharingService
         {
             services.AddMvc().SetCompatibilityVersion(CompatibilityVersion.Version_2_2);
 
-            // Register the anchor key cache.
-            services.AddSingleton<IAnchorIdCache>(new CosmosDbCache(this.Configuration.GetValue<string>("StorageConnectionString")));
+            // Register the anchor key cache. Anchor ids saved without an expiry never expire unless AnchorLifetimeDays is set.
+            double anchorLifetimeDays = this.Configuration.GetValue<double>("AnchorLifetimeDays", 0);
+            TimeSpan? anchorLifetime = anchorLifetimeDays > 0 ? TimeSpan.FromDays(anchorLifetimeDays) : (TimeSpan?)null;
+            // An anchor id is hidden once AnchorMissingReportThreshold distinct clients report it missing.
+            // The default of 1 hides it on the first report. Raise it to guard against a single misconfigured client.
+            int missingReportThreshold = this.Configuration.GetValue<int>("AnchorMissingReportThreshold", 1);
+            services.AddSingleton<IAnchorIdCache>(new CosmosDbCache(this.Configuration.GetValue<string>("StorageConnectionString"), anchorLifetime, missingReportThreshold));
+
+            // Register the sweep that removes expired anchor ids, and anchor ids hidden for longer than AnchorHiddenRetentionDays.
+            TimeSpan compactionInterval = TimeSpan.FromHours(this.Configuration.GetValue<double>("AnchorCompactionIntervalHours", 24));
+            TimeSpan hiddenRetention = TimeSpan.FromDays(this.Configuration.GetValue<double>("AnchorHiddenRetentionDays", 7));
+            services.AddSingleton<IHostedService>(serviceProvider => new AnchorCompactionService(
+                serviceProvider.GetRequiredService<IAnchorIdCache>(),
+                serviceProvider.GetRequiredService<ILogger<AnchorCompactionService>>(),
+                compactionInterval,
+                hiddenRetention));
 
             // Add an http client
             services.AddHttpClient<SpatialAnchorsTokenService>();